@@ -0,0 +1,184 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes expired files by streaming over a directory in batches, so only a bounded number of entries is held in memory no matter how large the directory is.
+ */
+class CacheCleaner {
+    private final int batchSize;
+    private final int threads;
+    private final int rate;
+    private final CleanupProgress progress = new CleanupProgress();
+    private final CleanupListener listener;
+    private ExecutorService executor = null;
+    private Semaphore inFlight = null;
+    private long started;
+    private long submitted = 0;
+
+    /**
+     * Creates a new cleaner.
+     *
+     * @param batchSize the number of files to check per batch.
+     * @param threads the number of threads checking batches, 1 to check them on the calling thread.
+     * @param rate the maximum number of files to check per second, 0 for no limit.
+     * @param listener the listener to report progress to, may be null.
+     */
+    CacheCleaner(int batchSize, int threads, int rate, CleanupListener listener) {
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.rate = rate;
+        this.listener = listener;
+    }
+
+    /**
+     * Deletes the files in the given directories that match their glob and were last modified before their expiry time.
+     *
+     * @param dirs the directories to clean up.
+     * @param globs the glob of the files to check in each directory.
+     * @param expiries the time before which files in each directory expire.
+     * @return the result of the cleanup.
+     * @throws IOException if an IOException occurs while listing a directory.
+     */
+    CleanupProgress run(Path[] dirs, String[] globs, long[] expiries) throws IOException {
+        started = System.nanoTime();
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads);
+            // Keeps at most two batches per thread in memory.
+            inFlight = new Semaphore(threads * 2);
+        }
+        try {
+            for (int i = 0; i < dirs.length; i++) {
+                clean(dirs[i], globs[i], expiries[i]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Cleanup was interrupted");
+        } finally {
+            if (executor != null) {
+                // Also when failing, so no batch still deletes files after returning.
+                awaitBatches();
+            }
+        }
+        return progress;
+    }
+
+    private void awaitBatches() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void clean(Path dir, String glob, long expiry) throws IOException, InterruptedException {
+        List<Path> batch = new ArrayList<Path>(batchSize);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path path : stream) {
+                batch.add(path);
+                if (batch.size() >= batchSize) {
+                    submit(batch, expiry);
+                    batch = new ArrayList<Path>(batchSize);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            submit(batch, expiry);
+        }
+    }
+
+    private void submit(final List<Path> batch, final long expiry) throws InterruptedException {
+        throttle(batch.size());
+        if (executor == null) {
+            clean(batch, expiry);
+            return;
+        }
+        inFlight.acquire();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    clean(batch, expiry);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    private void throttle(int count) throws InterruptedException {
+        if (rate <= 0) {
+            return;
+        }
+        // Sleep until the files submitted so far fit within the rate.
+        submitted += count;
+        long scheduled = submitted * 1000L / rate;
+        long elapsed = (System.nanoTime() - started) / 1000000L;
+        if (scheduled > elapsed) {
+            Thread.sleep(scheduled - elapsed);
+        }
+    }
+
+    private void clean(List<Path> batch, long expiry) {
+        for (Path path : batch) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile() && attributes.lastModifiedTime().toMillis() < expiry && Files.deleteIfExists(path)) {
+                    progress.addDeleted(attributes.size());
+                }
+            } catch (IOException ignore) {
+                // The file was removed or replaced while checking it.
+            }
+        }
+        progress.addScanned(batch.size());
+        if (listener != null) {
+            try {
+                listener.onProgress(progress);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
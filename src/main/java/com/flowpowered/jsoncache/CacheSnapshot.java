@@ -0,0 +1,323 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes and reads cache snapshots. A snapshot is a zip archive that starts with a manifest of the exact modification time and size of every cache file, followed by the files in the same order,
+ * each checked by its CRC-32 on import, and ends with the number of files it holds.
+ */
+class CacheSnapshot {
+    static final String MANIFEST = "snapshot.manifest";
+    static final String END = "snapshot.end";
+    private static final String STAGING_PREFIX = "snapshot";
+    private static final String MANIFEST_HEADER = "flow-json-cache-snapshot 1";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final File cacheDb;
+    private final File tempDir;
+    private final String glob;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    CacheSnapshot(File cacheDb, File tempDir, String glob) {
+        this.cacheDb = cacheDb;
+        this.tempDir = tempDir;
+        this.glob = glob;
+    }
+
+    /**
+     * Writes all cache files modified after the given time to the stream. Files that change while exporting are left out.
+     *
+     * @param out the stream to write the snapshot to, left open.
+     * @param expiry the time before which files are left out.
+     * @return the number of exported files.
+     * @throws IOException if an IOException occurs while reading the cache or writing the snapshot.
+     */
+    long export(OutputStream out, long expiry) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        // Staged in the temp directory, so it is bounded by the space of the cache and left alone by cleanup.
+        File staging = Files.createTempDirectory(tempDir.toPath(), STAGING_PREFIX).toFile();
+        File manifest = new File(staging, MANIFEST);
+        try {
+            // List the cache first, so the manifest can go before the files it describes.
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), UTF_8));
+                    DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDb.toPath(), glob)) {
+                writer.write(MANIFEST_HEADER);
+                writer.write('\n');
+                for (Path path : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    } catch (IOException ignore) {
+                        continue; // The file was removed while exporting.
+                    }
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().toMillis() >= expiry) {
+                        writer.write(new ManifestEntry(path.getFileName().toString(), attributes.lastModifiedTime().toMillis(), attributes.size()).toString());
+                        writer.write('\n');
+                    }
+                }
+            }
+            zip.putNextEntry(new ZipEntry(MANIFEST));
+            try (InputStream in = new FileInputStream(manifest)) {
+                copy(in, zip);
+            }
+            zip.closeEntry();
+
+            long count = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), UTF_8))) {
+                reader.readLine(); // Header.
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (export(zip, ManifestEntry.parse(line))) {
+                        count++;
+                    }
+                }
+            }
+
+            zip.putNextEntry(new ZipEntry(END));
+            zip.write(Long.toString(count).getBytes(UTF_8));
+            zip.closeEntry();
+            zip.finish();
+            return count;
+        } finally {
+            delete(staging);
+        }
+    }
+
+    private boolean export(ZipOutputStream zip, ManifestEntry expected) throws IOException {
+        Path path = new File(cacheDb, expected.name).toPath();
+        FileInputStream in;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.lastModifiedTime().toMillis() != expected.lastModified) {
+                return false; // Replaced since it was listed.
+            }
+            in = new FileInputStream(path.toFile());
+        } catch (IOException ignore) {
+            return false; // Removed since it was listed.
+        }
+        try {
+            // Cache files are only ever replaced, so the opened file keeps its size.
+            if (in.getChannel().size() != expected.size) {
+                return false;
+            }
+            ZipEntry entry = new ZipEntry(expected.name);
+            entry.setTime(expected.lastModified);
+            zip.putNextEntry(entry);
+            copy(in, zip);
+            zip.closeEntry();
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Reads a snapshot from the stream into the cache. The files are staged in the temp directory and only moved into the cache once the whole snapshot has been read and checked, so a corrupt or
+     * truncated snapshot leaves the cache alone. Cache files that are newer than the ones in the snapshot are kept.
+     *
+     * @param in the stream to read the snapshot from, left open.
+     * @return the number of imported files.
+     * @throws IOException if an IOException occurs while reading the snapshot or writing the cache, or if the snapshot is corrupt.
+     */
+    long load(InputStream in) throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        File staging = Files.createTempDirectory(tempDir.toPath(), STAGING_PREFIX).toFile();
+        try {
+            ZipEntry entry = zip.getNextEntry();
+            if (entry == null || !entry.getName().equals(MANIFEST)) {
+                throw new IOException("Snapshot doesn't start with a manifest");
+            }
+            File manifest = new File(staging, MANIFEST);
+            try (OutputStream out = new FileOutputStream(manifest)) {
+                copy(zip, out);
+            }
+            long count = 0;
+            boolean ended = false;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), UTF_8))) {
+                if (!MANIFEST_HEADER.equals(reader.readLine())) {
+                    throw new IOException("Snapshot has an unknown manifest version");
+                }
+                while ((entry = zip.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    if (ended) {
+                        throw new IOException("Snapshot contains an entry after its end: [" + name + "]");
+                    } else if (name.equals(END)) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        copy(zip, out);
+                        if (!Long.toString(count).equals(new String(out.toByteArray(), UTF_8))) {
+                            throw new IOException("Snapshot is incomplete, it doesn't contain all of its files");
+                        }
+                        ended = true;
+                    } else if (isCacheFile(name)) {
+                        stage(zip, staging, next(reader, name));
+                        count++;
+                    } else {
+                        throw new IOException("Snapshot contains an unexpected entry: [" + name + "]");
+                    }
+                }
+            }
+            if (!ended) {
+                throw new IOException("Snapshot is incomplete, its end is missing");
+            }
+            manifest.delete();
+            return commit(staging);
+        } finally {
+            delete(staging);
+        }
+    }
+
+    private ManifestEntry next(BufferedReader manifest, String name) throws IOException {
+        // The files are in manifest order, apart from those left out while exporting.
+        String line;
+        while ((line = manifest.readLine()) != null) {
+            ManifestEntry expected = ManifestEntry.parse(line);
+            if (expected.name.equals(name)) {
+                return expected;
+            }
+        }
+        throw new IOException("Snapshot contains an entry that isn't in its manifest: [" + name + "]");
+    }
+
+    private void stage(ZipInputStream zip, File staging, ManifestEntry expected) throws IOException {
+        File staged = new File(staging, expected.name);
+        long size;
+        try (OutputStream out = new FileOutputStream(staged)) {
+            // Reading to the end of the entry verifies its CRC-32.
+            size = copy(zip, out);
+        }
+        if (size != expected.size) {
+            throw new IOException("Snapshot entry doesn't have the size in its manifest: [" + expected.name + "]");
+        }
+        staged.setLastModified(expected.lastModified);
+    }
+
+    private long commit(File staging) throws IOException {
+        long count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(staging.toPath())) {
+            for (Path path : stream) {
+                File staged = path.toFile();
+                File writeTo = new File(cacheDb, staged.getName());
+                if (writeTo.exists()) {
+                    if (writeTo.lastModified() >= staged.lastModified()) {
+                        continue;
+                    }
+                    writeTo.delete();
+                }
+                if (staged.renameTo(writeTo)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the staging directories left behind by snapshots that were interrupted. This can't be done while exporting or importing a snapshot.
+     *
+     * @param tempDir the temp directory of the cache.
+     * @throws IOException if an IOException occurs while listing the temp directory.
+     */
+    static void clearStaging(File tempDir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempDir.toPath(), STAGING_PREFIX + "*")) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    delete(path.toFile());
+                }
+            }
+        }
+    }
+
+    private static void delete(File staging) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(staging.toPath())) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+        staging.delete();
+    }
+
+    private static boolean isCacheFile(String name) {
+        // Only plain file names, so an entry can't escape the cache directory.
+        return new File(name).getName().equals(name) && (name.endsWith(JsonCache.CACHE_FILE_SUFFIX) || name.endsWith(JsonCache.VARY_FILE_SUFFIX));
+    }
+
+    private long copy(InputStream in, OutputStream out) throws IOException {
+        long size = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            size += read;
+        }
+        return size;
+    }
+
+    private static class ManifestEntry {
+        private final String name;
+        private final long lastModified;
+        private final long size;
+
+        private ManifestEntry(String name, long lastModified, long size) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        private static ManifestEntry parse(String line) throws IOException {
+            String[] fields = line.split("\t");
+            if (fields.length != 3 || !isCacheFile(fields[0])) {
+                throw new IOException("Snapshot manifest contains an invalid line: [" + line + "]");
+            }
+            try {
+                return new ManifestEntry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Snapshot manifest contains an invalid line: [" + line + "]");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + '\t' + lastModified + '\t' + size;
+        }
+    }
+}
@@ -41,6 +41,8 @@ public class CachingInputStream extends InputStream {
     private long receivedBytes = 0;
     private boolean closed = false;
     private boolean exception = false;
+    private ReadAheadPump readAhead = null;
+    private final byte[] single = new byte[1];
 
     /**
      * Creates a new caching InputStream.
@@ -54,6 +56,24 @@ public class CachingInputStream extends InputStream {
         this.writeTo = writeTo;
     }
 
+    /**
+     * Creates a new caching InputStream that reads ahead on a background thread. The read data is kept in a ring of buffers for the consumer, and written to the cache in large batches by another
+     * background thread, so a slow consumer doesn't stall the download until it falls behind by the whole ring. When closed before the end, the download is discarded in the background, so
+     * {@link #setOnFailure(Runnable)} may run on a background thread after {@link #close()} returned.
+     *
+     * @param readFrom the stream to read data from.
+     * @param writeTo the stream to cache the read data to.
+     * @param readAheadBuffers the number of buffers in the ring, 0 to read on the calling thread instead.
+     * @param bufferSize the size of each buffer.
+     */
+    public CachingInputStream(InputStream readFrom, OutputStream writeTo, int readAheadBuffers, int bufferSize) {
+        this(readFrom, writeTo);
+        if (readAheadBuffers > 0) {
+            buffer = null;
+            readAhead = new ReadAheadPump(readFrom, writeTo, readAheadBuffers, bufferSize);
+        }
+    }
+
     public void setOnFinish(Runnable onFinish) {
         this.onFinish = onFinish;
     }
@@ -67,6 +87,9 @@ public class CachingInputStream extends InputStream {
     }
 
     public synchronized long getReceivedBytes() {
+        if (readAhead != null) {
+            return readAhead.getReceivedBytes();
+        }
         return receivedBytes;
     }
 
@@ -75,6 +98,9 @@ public class CachingInputStream extends InputStream {
     }
 
     public synchronized int read() throws IOException {
+        if (readAhead != null) {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
         int data = Integer.MAX_VALUE;
         try {
             data = readFrom.read();
@@ -97,6 +123,19 @@ public class CachingInputStream extends InputStream {
         }
     }
 
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (readAhead == null) {
+            return super.read(b, off, len);
+        }
+        try {
+            return readAhead.read(b, off, len);
+        } catch (IOException e) {
+            exception = true;
+            throw e;
+        }
+    }
+
     /**
      * Closes the stream it reads from and the stream it caches to.
      */
@@ -105,37 +144,62 @@ public class CachingInputStream extends InputStream {
         if (!closed) {
             closed = true;
 
+            if (readAhead != null && !readAhead.isReaderDone()) {
+                // Closed early. Closing the stream would wait for a read that may be stalled, so the pump closes the streams and discards the download once that read returns.
+                exception = true;
+                super.close();
+                readAhead.abandon(new Runnable() {
+                    public void run() {
+                        try {
+                            readFrom.close();
+                        } catch (IOException ignore) {
+                        }
+                        try {
+                            writeTo.close();
+                        } catch (IOException ignore) {
+                        }
+                        CachingInputStream.this.run(onFailure);
+                    }
+                });
+                throw new IOException("File was not completely downloaded! Expected=" + getExpectedBytes() + " actual=" + getReceivedBytes());
+            }
+            if (readAhead != null) {
+                readAhead.stop();
+            }
             readFrom.close();
             super.close();
 
             // Write remaining stuff to output.
             try {
-                if (buffer != null) {
-                    writeTo.write(buffer.array(), 0, buffer.position());
-                    buffer = null;
+                try {
+                    if (readAhead != null) {
+                        readAhead.close();
+                    } else if (buffer != null) {
+                        writeTo.write(buffer.array(), 0, buffer.position());
+                        buffer = null;
+                    }
+                } finally {
+                    writeTo.close();
                 }
-                writeTo.close();
             } catch (IOException e) {
                 exception = true;
                 throw e;
             } finally {
-                if (expectedBytes != -1 || !exception) {
-                    if (expectedBytes == receivedBytes || (expectedBytes == -1 || !exception)) {
-                        if (onFinish != null) {
-                            try {
-                                onFinish.run();
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
+                if (readAhead != null) {
+                    // Only cache what was read to the end and completely written.
+                    if (!exception && readAhead.isComplete() && (expectedBytes == -1 || expectedBytes == getReceivedBytes())) {
+                        run(onFinish);
                     } else {
-                        if (onFailure != null) {
-                            try {
-                                onFailure.run();
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
+                        run(onFailure);
+                        if (!exception) {
+                            throw new IOException("File was not completely downloaded! Expected=" + getExpectedBytes() + " actual=" + getReceivedBytes());
                         }
+                    }
+                } else if (expectedBytes != -1 || !exception) {
+                    if (expectedBytes == getReceivedBytes() || (expectedBytes == -1 || !exception)) {
+                        run(onFinish);
+                    } else {
+                        run(onFailure);
                         throw new IOException("File was not completely downloaded! Expected=" + getExpectedBytes() + " actual=" + getReceivedBytes());
                     }
                 }
@@ -143,28 +207,50 @@ public class CachingInputStream extends InputStream {
         }
     }
 
+    private void run(Runnable callback) {
+        if (callback != null) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     @Override
     public int available() throws IOException {
+        if (readAhead != null) {
+            return readAhead.available();
+        }
         return readFrom.available();
     }
 
     @Override
     public synchronized void mark(int readlimit) {
+        if (readAhead != null) {
+            return;
+        }
         readFrom.mark(readlimit);
     }
 
     @Override
     public boolean markSupported() {
-        return readFrom.markSupported();
+        return readAhead == null && readFrom.markSupported();
     }
 
     @Override
     public synchronized void reset() throws IOException {
+        if (readAhead != null) {
+            throw new IOException("mark/reset not supported when reading ahead");
+        }
         readFrom.reset();
     }
 
     @Override
     public long skip(long n) throws IOException {
+        if (readAhead != null) {
+            return super.skip(n); // Reads the skipped data, so it is still cached.
+        }
         return readFrom.skip(n);
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a {@link JsonCache#cleanup(CleanupListener)} pass, and its result once it returns.
+ */
+public class CleanupProgress {
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    /**
+     * Gets the number of files that have been checked so far.
+     *
+     * @return the number of checked files.
+     */
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    /**
+     * Gets the number of files that have been deleted so far.
+     *
+     * @return the number of deleted files.
+     */
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * Gets the size of the files that have been deleted so far.
+     *
+     * @return the reclaimed space in bytes.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    void addScanned(long count) {
+        scanned.addAndGet(count);
+    }
+
+    void addDeleted(long size) {
+        deleted.incrementAndGet();
+        reclaimedBytes.addAndGet(size);
+    }
+
+    @Override
+    public String toString() {
+        return "CleanupProgress{scanned=" + getScanned() + ", deleted=" + getDeleted() + ", reclaimedBytes=" + getReclaimedBytes() + "}";
+    }
+}
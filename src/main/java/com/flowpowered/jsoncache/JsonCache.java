@@ -27,9 +27,23 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import com.flowpowered.jsoncache.connector.DefaultURLConnector;
+import com.flowpowered.jsoncache.connector.DownloadURLConnector;
 import com.flowpowered.jsoncache.connector.URLConnector;
 
 public class JsonCache {
@@ -37,7 +51,15 @@ public class JsonCache {
     private long maxAge = 1000 * 60 * 60 * 24 * 7; // Keep for one week.
     private File cacheDb = null;
     private File tempDir = null;
+    private int cleanupBatchSize = 1000;
+    private int cleanupThreads = 1;
+    private int cleanupRate = 0; // No limit.
     public static final String CACHE_FILE_SUFFIX = ".fjcache";
+    public static final String VARY_FILE_SUFFIX = ".fjvary";
+    private static final String CACHE_FILES_GLOB = "*{" + CACHE_FILE_SUFFIX + "," + VARY_FILE_SUFFIX + "}";
+    // Headers that HttpURLConnection doesn't return from getRequestProperties().
+    private static final Set<String> HIDDEN_HEADERS = new TreeSet<String>(Arrays.asList("authorization", "proxy-authorization"));
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     public static final DefaultURLConnector DEFAULT_CONNECTOR = new DefaultURLConnector();
 
     /**
@@ -58,32 +80,133 @@ public class JsonCache {
         if (!tempDir.exists()) {
             tempDir.mkdirs();
         }
+        // Snapshots that were interrupted leave their staged files behind, which cleanup doesn't delete.
+        try {
+            CacheSnapshot.clearStaging(tempDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
      * Deletes all caches older than {@link getMaxAge()} <br/>Does not do anything in offline mode
      */
     public void cleanup() {
-        if (!isOfflineMode()) {
-            long currentTime = System.currentTimeMillis();
-            File[] contents = cacheDb.listFiles();
-            for (File file : contents) {
-                if (file.isFile() && file.getAbsolutePath().endsWith(CACHE_FILE_SUFFIX)) {
-                    long lastModified = file.lastModified();
-                    if (currentTime - getMaxAge() > lastModified) {
-                        file.delete();
-                    }
-                }
-            }
-            contents = tempDir.listFiles();
-            for (File file : contents) {
-                if (file.isFile()) {
-                    file.delete();
-                }
-            }
+        try {
+            cleanup(null);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    /**
+     * Deletes all caches older than {@link getMaxAge()} and empties the temp directory. <br/>Does not do anything in offline mode
+     *
+     * The directories are streamed over in batches of {@link getCleanupBatchSize()} files, which are checked by {@link getCleanupThreads()} threads, at no more than {@link getCleanupRate()} files
+     * per second.
+     *
+     * @param listener the listener to report progress to after each batch, may be null.
+     * @return how many files were checked and deleted, and how many bytes were reclaimed.
+     * @throws IOException if an IOException occurs while listing the cache directories.
+     */
+    public CleanupProgress cleanup(CleanupListener listener) throws IOException {
+        if (isOfflineMode()) {
+            return new CleanupProgress();
+        }
+        CacheCleaner cleaner = new CacheCleaner(getCleanupBatchSize(), getCleanupThreads(), getCleanupRate(), listener);
+        return cleaner.run(new Path[] {cacheDb.toPath(), tempDir.toPath()},
+                new String[] {CACHE_FILES_GLOB, "*"},
+                new long[] {System.currentTimeMillis() - getMaxAge(), Long.MAX_VALUE});
+    }
+
+    /**
+     * Sets the number of files {@link cleanup(CleanupListener)} checks per batch.
+     *
+     * @param cleanupBatchSize the number of files per batch.
+     */
+    public void setCleanupBatchSize(int cleanupBatchSize) {
+        if (cleanupBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size needs to be positive");
+        }
+        this.cleanupBatchSize = cleanupBatchSize;
+    }
+
+    /**
+     * Gets the number of files {@link cleanup(CleanupListener)} checks per batch.
+     *
+     * @return the number of files per batch.
+     */
+    public int getCleanupBatchSize() {
+        return cleanupBatchSize;
+    }
+
+    /**
+     * Sets the number of threads {@link cleanup(CleanupListener)} checks batches with.
+     *
+     * @param cleanupThreads the number of threads, 1 to clean up on the calling thread.
+     */
+    public void setCleanupThreads(int cleanupThreads) {
+        if (cleanupThreads <= 0) {
+            throw new IllegalArgumentException("Thread count needs to be positive");
+        }
+        this.cleanupThreads = cleanupThreads;
+    }
+
+    /**
+     * Gets the number of threads {@link cleanup(CleanupListener)} checks batches with.
+     *
+     * @return the number of threads.
+     */
+    public int getCleanupThreads() {
+        return cleanupThreads;
+    }
+
+    /**
+     * Sets the maximum number of files {@link cleanup(CleanupListener)} checks per second, to avoid saturating the disk.
+     *
+     * @param cleanupRate the number of files per second, 0 for no limit.
+     */
+    public void setCleanupRate(int cleanupRate) {
+        if (cleanupRate < 0) {
+            throw new IllegalArgumentException("Rate can't be negative");
+        }
+        this.cleanupRate = cleanupRate;
+    }
+
+    /**
+     * Gets the maximum number of files {@link cleanup(CleanupListener)} checks per second.
+     *
+     * @return the number of files per second, 0 for no limit.
+     */
+    public int getCleanupRate() {
+        return cleanupRate;
+    }
+
+    /**
+     * Writes a snapshot of all caches newer than {@link getMaxAge()} to the stream, so another cache can start from it with {@link importSnapshot(InputStream)}.
+     *
+     * @param out the stream to write the snapshot to. It is not closed.
+     * @return the number of exported cache files.
+     * @throws IOException if an IOException occurs while reading the caches or writing the snapshot.
+     */
+    public long exportSnapshot(OutputStream out) throws IOException {
+        return new CacheSnapshot(cacheDb, tempDir, CACHE_FILES_GLOB).export(out, System.currentTimeMillis() - getMaxAge());
+    }
+
+    /**
+     * Reads a snapshot written by {@link exportSnapshot(OutputStream)} into this cache. The caches keep the modification time they had when exported, and caches that are newer here are kept.
+     *
+     * The snapshot is staged in the temp directory and only moved into the cache once all of it has been checked, so a corrupt snapshot doesn't change the cache. Moving the files in isn't atomic
+     * though, other lookups can see some of them before the rest.
+     *
+     * @param in the stream to read the snapshot from. It is not closed.
+     * @return the number of imported cache files.
+     * @throws IOException if an IOException occurs while reading the snapshot or writing the caches, or if the snapshot is corrupt.
+     */
+    public long importSnapshot(InputStream in) throws IOException {
+        return new CacheSnapshot(cacheDb, tempDir, CACHE_FILES_GLOB).load(in);
+    }
+
     /**
      * Sets the maximum age a cached URL will survive in this cache.
      *
@@ -136,8 +259,18 @@ public class JsonCache {
     public InputStream get(URL url, URLConnector connector, boolean force) throws NoCacheException, IOException {
         File cacheFile = getCachedFile(url);
         if (isOfflineMode()) {
-            if (cacheFile.exists()) {
-                return new FileInputStream(cacheFile);
+            // Nothing is sent, the connection is only used to find out which variant the connector would request.
+            URLConnection conn = url.openConnection();
+            Map<String, List<String>> requestHeaders;
+            if (connector instanceof DownloadURLConnector) {
+                requestHeaders = ((DownloadURLConnector) connector).prepareRequest(conn);
+            } else {
+                connector.setHeaders(conn);
+                requestHeaders = conn.getRequestProperties();
+            }
+            File variantFile = getVariantFile(cacheFile, requestHeaders);
+            if (variantFile != null && variantFile.exists()) {
+                return new FileInputStream(variantFile);
             } else {
                 throw new NoCacheException("Cache file does not contain expected content: [" + cacheFile.getPath() + "]");
             }
@@ -177,6 +310,122 @@ public class JsonCache {
         return new File(cacheDb, getCacheKey(url) + CACHE_FILE_SUFFIX);
     }
 
+    /**
+     * Gets the file the response to a request with the given headers is cached in. If the last response for the URL of {@code cacheFile} had a Vary header, this is the variant file for the values of
+     * the headers it named, otherwise it is {@code cacheFile} itself.
+     *
+     * @param cacheFile the cache file of the URL, see {@link getCachedFile(URL)}.
+     * @param requestHeaders the headers of the request.
+     * @return the file to read the cached response from, or null if the response can't be cached.
+     * @throws IOException if an IOException occurs while reading the recorded Vary header.
+     */
+    public static File getVariantFile(File cacheFile, Map<String, List<String>> requestHeaders) throws IOException {
+        File varyFile = getVaryFile(cacheFile);
+        if (!varyFile.exists()) {
+            return cacheFile;
+        }
+        String vary = new String(Files.readAllBytes(varyFile.toPath()), UTF_8);
+        return getVariantFile(cacheFile, vary, requestHeaders);
+    }
+
+    /**
+     * Gets the file the response to a request with the given headers is cached in, for a response with the given Vary header.
+     *
+     * @param cacheFile the cache file of the URL, see {@link getCachedFile(URL)}.
+     * @param vary the Vary header of the response, may be null.
+     * @param requestHeaders the headers of the request.
+     * @return the file to cache the response in, or null if the response can't be cached.
+     */
+    public static File getVariantFile(File cacheFile, String vary, Map<String, List<String>> requestHeaders) {
+        Set<String> names = parseVary(vary);
+        if (names.isEmpty()) {
+            return cacheFile;
+        } else if (names.contains("*")) {
+            return null; // The response depends on more than the request headers.
+        }
+        StringBuilder variant = new StringBuilder();
+        for (String name : names) {
+            variant.append(name).append(':');
+            boolean found = false;
+            for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+                if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) && header.getValue() != null) {
+                    found = true;
+                    for (String value : header.getValue()) {
+                        variant.append(value).append(',');
+                    }
+                }
+            }
+            if (!found && HIDDEN_HEADERS.contains(name)) {
+                return null; // It may have been sent without being readable, so requests with different values can't be told apart.
+            }
+            variant.append('\n');
+        }
+        String key = cacheFile.getName();
+        if (key.endsWith(CACHE_FILE_SUFFIX)) {
+            key = key.substring(0, key.length() - CACHE_FILE_SUFFIX.length());
+        }
+        // A digest, so variants can't collide and header values like credentials don't end up in file names.
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(variant.toString().getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return new File(cacheFile.getParentFile(), key + "-v" + hex + CACHE_FILE_SUFFIX);
+    }
+
+    /**
+     * Records the Vary header of the latest response for the URL of {@code cacheFile}, so later requests are looked up in the right variant file.
+     *
+     * @param cacheFile the cache file of the URL, see {@link getCachedFile(URL)}.
+     * @param vary the Vary header of the response, may be null.
+     * @throws IOException if an IOException occurs while writing the Vary header.
+     */
+    public static void setVary(File cacheFile, String vary) throws IOException {
+        File varyFile = getVaryFile(cacheFile);
+        Set<String> names = parseVary(vary);
+        if (names.isEmpty()) {
+            if (varyFile.exists()) {
+                varyFile.delete();
+            }
+            return;
+        }
+        StringBuilder normalized = new StringBuilder();
+        for (String name : names) {
+            if (normalized.length() > 0) {
+                normalized.append(',');
+            }
+            normalized.append(name);
+        }
+        Files.write(varyFile.toPath(), normalized.toString().getBytes(UTF_8));
+    }
+
+    private static File getVaryFile(File cacheFile) {
+        String key = cacheFile.getName();
+        if (key.endsWith(CACHE_FILE_SUFFIX)) {
+            key = key.substring(0, key.length() - CACHE_FILE_SUFFIX.length());
+        }
+        return new File(cacheFile.getParentFile(), key + VARY_FILE_SUFFIX);
+    }
+
+    private static Set<String> parseVary(String vary) {
+        // Header names are case insensitive and their order doesn't matter.
+        Set<String> names = new TreeSet<String>();
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                name = name.trim().toLowerCase(Locale.ENGLISH);
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
     private String getCacheKey(URL url) {
         // Sanitize string.
         String path = url.toString();
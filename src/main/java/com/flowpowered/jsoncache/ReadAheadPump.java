@@ -0,0 +1,292 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads ahead from an InputStream on a background thread into a bounded ring of reusable buffers, which a second background thread writes to an OutputStream in large sequential batches while the
+ * consumer reads them. The network is only held up when the consumer or the disk falls behind by more than the whole ring.
+ */
+class ReadAheadPump {
+    private static final Chunk END = new Chunk(0);
+    private final InputStream readFrom;
+    private final OutputStream writeTo;
+    private final BlockingQueue<Chunk> free = new LinkedBlockingQueue<Chunk>();
+    private final BlockingQueue<Chunk> toWrite = new LinkedBlockingQueue<Chunk>();
+    private final BlockingQueue<Chunk> toRead = new LinkedBlockingQueue<Chunk>();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final Thread reader;
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile boolean finished = false;
+    private volatile boolean readerDone = false;
+    private boolean writerDone = false;
+    private Runnable onAbandoned = null;
+    private volatile IOException readError = null;
+    private volatile IOException writeError = null;
+    private Chunk current = null;
+
+    /**
+     * Creates a new pump and starts reading ahead.
+     *
+     * @param readFrom the stream to read data from.
+     * @param writeTo the stream to cache the read data to. It is not closed.
+     * @param buffers the number of buffers in the ring.
+     * @param bufferSize the size of each buffer.
+     */
+    ReadAheadPump(InputStream readFrom, OutputStream writeTo, int buffers, int bufferSize) {
+        this.readFrom = readFrom;
+        // Batches the chunks that are ready into a few large writes.
+        this.writeTo = new BufferedOutputStream(writeTo, bufferSize * 4);
+        for (int i = 0; i < buffers; i++) {
+            free.offer(new Chunk(bufferSize));
+        }
+        reader = new Thread(new Runnable() {
+            public void run() {
+                pump();
+            }
+        }, "CachingInputStream reader");
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "CachingInputStream writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private void pump() {
+        try {
+            while (!closed) {
+                Chunk chunk = free.take();
+                int read = fill(chunk);
+                if (chunk.length > 0) {
+                    receivedBytes.addAndGet(chunk.length);
+                    chunk.refs.set(2);
+                    toWrite.offer(chunk);
+                    toRead.offer(chunk);
+                } else {
+                    free.offer(chunk);
+                }
+                if (read == -1) {
+                    finished = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                readError = e;
+            }
+        } catch (InterruptedException ignore) {
+            // Closed while waiting for a free buffer.
+        } finally {
+            readerDone = true;
+            toWrite.offer(END);
+            toRead.offer(END);
+        }
+    }
+
+    private int fill(Chunk chunk) throws IOException {
+        // Fill the buffer as far as the data that has already arrived allows, so the consumer isn't kept waiting on a slow stream.
+        chunk.length = 0;
+        chunk.position = 0;
+        int read;
+        do {
+            read = readFrom.read(chunk.data, chunk.length, chunk.data.length - chunk.length);
+            if (read > 0) {
+                chunk.length += read;
+            }
+        } while (read != -1 && chunk.length < chunk.data.length && (chunk.length == 0 || readFrom.available() > 0));
+        return read;
+    }
+
+    private void write() {
+        try {
+            Chunk chunk;
+            while ((chunk = toWrite.take()) != END) {
+                if (writeError == null) {
+                    try {
+                        writeTo.write(chunk.data, 0, chunk.length);
+                        if (toWrite.isEmpty()) {
+                            writeTo.flush();
+                        }
+                    } catch (IOException e) {
+                        // Keep releasing the buffers so reading can go on.
+                        writeError = e;
+                    }
+                }
+                release(chunk);
+            }
+            if (writeError == null) {
+                writeTo.flush();
+            }
+        } catch (IOException e) {
+            writeError = e;
+        } catch (InterruptedException ignore) {
+            // Never interrupted, the reader always ends with END.
+        }
+        Runnable abandoned;
+        synchronized (this) {
+            writerDone = true;
+            abandoned = onAbandoned;
+        }
+        if (abandoned != null) {
+            abandoned.run();
+        }
+    }
+
+    private void release(Chunk chunk) {
+        if (chunk.refs.decrementAndGet() == 0) {
+            free.offer(chunk);
+        }
+    }
+
+    /**
+     * Reads read-ahead data, waiting for it if none is available yet.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream.
+     * @throws IOException if reading from the underlying stream failed.
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (current == null) {
+            try {
+                current = toRead.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+        }
+        if (current == END) {
+            toRead.offer(END); // Stay at the end on subsequent reads.
+            current = null;
+            if (readError != null) {
+                throw readError;
+            }
+            return -1;
+        }
+        int read = Math.min(len, current.length - current.position);
+        System.arraycopy(current.data, current.position, b, off, read);
+        current.position += read;
+        if (current.position == current.length) {
+            release(current);
+            current = null;
+        }
+        return read;
+    }
+
+    int available() {
+        return current == null || current == END ? 0 : current.length - current.position;
+    }
+
+    long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Gets whether the whole stream has been read and written without errors.
+     *
+     * @return if the data was cached completely.
+     */
+    boolean isComplete() {
+        return finished && readError == null && writeError == null;
+    }
+
+    /**
+     * Gets whether the reader has stopped, so the underlying InputStream isn't being read anymore.
+     *
+     * @return if the reader has stopped.
+     */
+    boolean isReaderDone() {
+        return readerDone;
+    }
+
+    /**
+     * Stops reading ahead without waiting for the reader, which may be stuck in a read of the underlying InputStream. The given task runs on a background thread once the reader has returned
+     * and everything it read has been written, or right away if that has already happened.
+     *
+     * @param onAbandoned the task that closes the streams and discards the cached data.
+     */
+    void abandon(Runnable onAbandoned) {
+        stop();
+        synchronized (this) {
+            if (!writerDone) {
+                this.onAbandoned = onAbandoned;
+                return;
+            }
+        }
+        onAbandoned.run();
+    }
+
+    /**
+     * Stops reading ahead.
+     */
+    void stop() {
+        closed = true;
+        reader.interrupt();
+    }
+
+    /**
+     * Stops reading ahead and waits until everything read so far has been written.
+     *
+     * @throws IOException if writing to the cache failed.
+     */
+    void close() throws IOException {
+        stop();
+        try {
+            reader.join();
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the cache to be written");
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final AtomicInteger refs = new AtomicInteger();
+        private int length = 0;
+        private int position = 0;
+
+        private Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+}
@@ -30,12 +30,17 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.List;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.DateTimeFormatterBuilder;
 
+import com.flowpowered.jsoncache.JsonCache;
+import com.flowpowered.jsoncache.NoCacheException;
+
 /**
  * The default URLConnector.
  *
@@ -60,19 +65,17 @@ public class DefaultURLConnector extends DownloadURLConnector implements URLConn
             httpconn = (HttpURLConnection) conn;
         }
 
+        // Find the cached variant for these request headers.
+        Map<String, List<String>> requestHeaders = prepareRequest(conn);
+        File cached = JsonCache.getVariantFile(writeTo, requestHeaders);
+
         // Check modified date.
         DateTime modified = null;
-        if (writeTo.exists()) {
-            modified = new DateTime(writeTo.lastModified());
+        if (cached != null && cached.exists() && conn.getRequestProperty("If-Modified-Since") == null) {
+            modified = new DateTime(cached.lastModified());
             conn.setRequestProperty("If-Modified-Since", modified.toString(HTTP_DATE_TIME));
         }
 
-        setHeaders(conn);
-
-        // Set the user agent for the request.
-        System.setProperty("http.agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.162 Safari/535.19");
-        conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.162 Safari/535.19");
-
         conn.connect();
 
         onConnected(conn);
@@ -89,7 +92,10 @@ public class DefaultURLConnector extends DownloadURLConnector implements URLConn
                 conn.getOutputStream().close();
             } catch (IOException ignore) {
             }
-            return new FileInputStream(writeTo);
+            if (cached == null) {
+                throw new NoCacheException("Server replied not modified, but the response can't be cached: [" + url + "]");
+            }
+            return new FileInputStream(cached);
         }
 
         if (modified != null) {
@@ -105,10 +111,10 @@ public class DefaultURLConnector extends DownloadURLConnector implements URLConn
                     conn.getOutputStream().close();
                 } catch (IOException ignore) {
                 }
-                return new FileInputStream(writeTo);
+                return new FileInputStream(cached);
             }
         }
 
-        return download(conn, temp, writeTo);
+        return download(conn, requestHeaders, temp, writeTo);
     }
 }
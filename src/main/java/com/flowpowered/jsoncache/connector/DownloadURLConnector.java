@@ -29,8 +29,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import com.flowpowered.jsoncache.CachingInputStream;
+import com.flowpowered.jsoncache.JsonCache;
 
 /**
  * The default URLConnector.
@@ -38,52 +42,118 @@ import com.flowpowered.jsoncache.CachingInputStream;
  * Opens the URL with <pre>url.openStream();</pre>
  */
 public class DownloadURLConnector implements URLConnector {
+    private int readAheadBuffers = 0;
+    private int readAheadBufferSize = 64 * 1024;
+
     public InputStream openURL(URL url, File temp, File writeTo) throws IOException {
         URLConnection conn = url.openConnection();
 
-        setHeaders(conn);
-
-        // Set the user agent for the request.
-        System.setProperty("http.agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.162 Safari/535.19");
-        conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.162 Safari/535.19");
+        Map<String, List<String>> requestHeaders = prepareRequest(conn);
 
         conn.connect();
 
         onConnected(conn);
 
-        return download(conn, temp, writeTo);
+        return download(conn, requestHeaders, temp, writeTo);
+    }
+
+    /**
+     * Sets the headers of the request and gets them, so the cached variant of responses that have a Vary header can be found. This is used for offline lookups as well, so all headers that are
+     * sent need to be set here.
+     *
+     * @param connection the connection that hasn't connected yet.
+     * @return the request headers.
+     */
+    public Map<String, List<String>> prepareRequest(URLConnection connection) {
+        setHeaders(connection);
+
+        // Set the user agent for the request.
+        System.setProperty("http.agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.162 Safari/535.19");
+        connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.162 Safari/535.19");
+
+        return getRequestHeaders(connection);
+    }
+
+    /**
+     * @deprecated doesn't know the request headers, so responses with a Vary header are all cached as the same variant. {@link #openURL(URL, File, File)} no longer calls this, so it can't be
+     *             overridden anymore, override {@link #download(URLConnection, Map, File, File)} instead.
+     */
+    @Deprecated
+    protected final CachingInputStream download(URLConnection conn, File temp, File writeTo) throws IOException {
+        return download(conn, Collections.<String, List<String>>emptyMap(), temp, writeTo);
     }
 
-    protected CachingInputStream download(URLConnection conn, final File temp, final File writeTo) throws IOException {
+    protected CachingInputStream download(URLConnection conn, Map<String, List<String>> requestHeaders, File temp, final File writeTo) throws IOException {
+        // Responses that vary on request headers are cached per variant.
+        final String vary = conn.getHeaderField("Vary");
+        final File variantFile = JsonCache.getVariantFile(writeTo, vary, requestHeaders);
+        final File variantTemp = variantFile == null ? temp : new File(temp.getParentFile(), variantFile.getName());
+
         // Download the server copy.
-        CachingInputStream cache = new CachingInputStream(conn.getInputStream(), new FileOutputStream(temp));
+        CachingInputStream cache = new CachingInputStream(conn.getInputStream(), new FileOutputStream(variantTemp), readAheadBuffers, readAheadBufferSize);
         cache.setExpectedBytes(conn.getContentLength());
 
         // When successfully downloaded, move temp file to normal location.
         cache.setOnFinish(new Runnable() {
             public void run() {
-                if (writeTo.exists()) {
-                    writeTo.delete();
+                if (variantFile == null) { // Vary: *, can't be cached.
+                    variantTemp.delete();
+                } else {
+                    if (variantFile.exists()) {
+                        variantFile.delete();
+                    }
+                    variantTemp.renameTo(variantFile);
+                }
+                // Only now lookups can go to the variant.
+                try {
+                    JsonCache.setVary(writeTo, vary);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-                temp.renameTo(writeTo);
             }
         });
 
         // When failed, delete temp file.
         cache.setOnFailure(new Runnable() {
             public void run() {
-                temp.delete();
+                variantTemp.delete();
             }
         });
 
         return cache;
     }
 
+    /**
+     * Sets whether downloads read ahead on a background thread, so their speed doesn't depend on how fast the returned stream is read. See
+     * {@link CachingInputStream#CachingInputStream(InputStream, java.io.OutputStream, int, int)}.
+     *
+     * @param buffers the number of buffers to read ahead into per download, 0 to read on the calling thread.
+     * @param bufferSize the size of each buffer.
+     */
+    public void setReadAhead(int buffers, int bufferSize) {
+        if (buffers < 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer count can't be negative and buffer size needs to be positive");
+        }
+        this.readAheadBuffers = buffers;
+        this.readAheadBufferSize = bufferSize;
+    }
+
     public void setHeaders(URLConnection connection) {
         connection.setConnectTimeout(5000);
         connection.setReadTimeout(5000);
     }
 
+    /**
+     * Gets the headers set on the connection. HttpURLConnection doesn't return the Authorization and Proxy-Authorization headers, so responses that vary on them aren't cached unless this is
+     * overridden to add them.
+     *
+     * @param connection the connection that hasn't connected yet.
+     * @return the request headers.
+     */
+    public Map<String, List<String>> getRequestHeaders(URLConnection connection) {
+        return connection.getRequestProperties();
+    }
+
     public void onConnected(URLConnection connection) {
         // Nothing to do here.
     }
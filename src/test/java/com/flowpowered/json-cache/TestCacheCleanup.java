@@ -0,0 +1,105 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestCacheCleanup {
+    private static final long EXPIRED = System.currentTimeMillis() - 1000L * 60 * 60 * 24 * 30;
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCleanup() throws IOException {
+        testCleanup(1);
+    }
+
+    @Test
+    public void testParallelCleanup() throws IOException {
+        testCleanup(4);
+    }
+
+    @Test
+    public void testOfflineCleanup() throws IOException {
+        File db = folder.newFolder("cachedb");
+        JsonCache cache = new JsonCache(db);
+        write(new File(db, "expired" + JsonCache.CACHE_FILE_SUFFIX), 10, EXPIRED);
+        cache.setOfflineMode(true);
+        Assert.assertEquals("Offline mode shouldn't check any file", 0, cache.cleanup(null).getScanned());
+        Assert.assertTrue("Offline mode shouldn't delete any file", new File(db, "expired" + JsonCache.CACHE_FILE_SUFFIX).exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeRate() throws IOException {
+        new JsonCache(folder.newFolder("cachedb")).setCleanupRate(-1);
+    }
+
+    private void testCleanup(int threads) throws IOException {
+        File db = folder.newFolder("cachedb");
+        JsonCache cache = new JsonCache(db);
+        cache.setCleanupThreads(threads);
+        cache.setCleanupBatchSize(7);
+        int expired = 0;
+        for (int i = 0; i < 100; i++) {
+            String suffix = i % 2 == 0 ? JsonCache.CACHE_FILE_SUFFIX : JsonCache.VARY_FILE_SUFFIX;
+            if (i % 3 == 0) {
+                write(new File(db, i + suffix), 10, EXPIRED);
+                expired++;
+            } else {
+                write(new File(db, i + suffix), 10, System.currentTimeMillis());
+            }
+        }
+        write(new File(db, "other.txt"), 10, EXPIRED);
+        write(new File(db, "temp/download" + JsonCache.CACHE_FILE_SUFFIX), 5, System.currentTimeMillis());
+
+        final AtomicInteger batches = new AtomicInteger();
+        CleanupProgress progress = cache.cleanup(new CleanupListener() {
+            @Override
+            public void onProgress(CleanupProgress progress) {
+                batches.incrementAndGet();
+            }
+        });
+
+        Assert.assertEquals("All cache and temp files should be checked", 101, progress.getScanned());
+        Assert.assertEquals("Only expired cache files and temp files should be deleted", expired + 1, progress.getDeleted());
+        Assert.assertEquals("The size of the deleted files should be reclaimed", expired * 10 + 5, progress.getReclaimedBytes());
+        Assert.assertEquals("Progress should be reported for every batch", 15 + 1, batches.get());
+        Assert.assertEquals("Unexpired cache files should be kept", 100 - expired, db.list().length - 2);
+        Assert.assertTrue("Other files should be kept", new File(db, "other.txt").exists());
+        Assert.assertEquals("The temp directory should be emptied", 0, new File(db, "temp").list().length);
+    }
+
+    private static void write(File file, int size, long lastModified) throws IOException {
+        Files.write(file.toPath(), new byte[size]);
+        file.setLastModified(lastModified);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestCacheSnapshot {
+    private final long now = System.currentTimeMillis();
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File db = folder.newFolder();
+        JsonCache cache = new JsonCache(db);
+        for (int i = 0; i < 20; i++) {
+            write(new File(db, i + JsonCache.CACHE_FILE_SUFFIX), "{\"value\":" + i + "}", now - i * 1234567L - 321);
+        }
+        write(new File(db, "0" + JsonCache.VARY_FILE_SUFFIX), "accept-language", now - 1001);
+        write(new File(db, "expired" + JsonCache.CACHE_FILE_SUFFIX), "{}", now - cache.getMaxAge() - 1000);
+
+        byte[] snapshot;
+        TimeZone timeZone = TimeZone.getDefault();
+        File imported = folder.newFolder();
+        long count;
+        try {
+            // Zip entry times are local times, the snapshot shouldn't depend on them.
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+            snapshot = export(cache);
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            count = new JsonCache(imported).importSnapshot(new ByteArrayInputStream(snapshot));
+        } finally {
+            TimeZone.setDefault(timeZone);
+        }
+
+        Assert.assertEquals("All unexpired files should be imported", 21, count);
+        Assert.assertFalse("Expired files shouldn't be exported", new File(imported, "expired" + JsonCache.CACHE_FILE_SUFFIX).exists());
+        for (String name : db.list()) {
+            File original = new File(db, name);
+            File copy = new File(imported, name);
+            if (original.isDirectory() || name.startsWith("expired")) {
+                continue;
+            }
+            Assert.assertTrue("The file should be imported: " + name, Arrays.equals(Files.readAllBytes(original.toPath()), Files.readAllBytes(copy.toPath())));
+            Assert.assertEquals("The modification time should be kept: " + name, original.lastModified(), copy.lastModified());
+        }
+        Assert.assertEquals("The temp directory should be left empty", 0, new File(imported, "temp").list().length);
+        Assert.assertEquals("Exporting should leave the temp directory empty", 0, new File(db, "temp").list().length);
+    }
+
+    @Test
+    public void testNewerLocalFile() throws IOException {
+        File db = folder.newFolder();
+        write(new File(db, "test" + JsonCache.CACHE_FILE_SUFFIX), "old", now - 10000);
+        byte[] snapshot = export(new JsonCache(db));
+
+        File local = folder.newFolder();
+        write(new File(local, "test" + JsonCache.CACHE_FILE_SUFFIX), "new", now);
+        Assert.assertEquals("Newer local files should be kept", 0, new JsonCache(local).importSnapshot(new ByteArrayInputStream(snapshot)));
+        Assert.assertEquals("Newer local files should be kept", "new", new String(Files.readAllBytes(new File(local, "test" + JsonCache.CACHE_FILE_SUFFIX).toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws IOException {
+        File db = folder.newFolder();
+        for (int i = 0; i < 5; i++) {
+            write(new File(db, i + JsonCache.CACHE_FILE_SUFFIX), "{\"value\":" + i + "}", now);
+        }
+        byte[] snapshot = export(new JsonCache(db));
+        byte[] corrupt = snapshot.clone();
+        // Right after the name in the local header of an entry is its data.
+        byte[] name = ("2" + JsonCache.CACHE_FILE_SUFFIX).getBytes("UTF-8");
+        corrupt[indexOf(corrupt, name) + name.length + 1] ^= 0x55;
+        assertRejected("A corrupt snapshot should be rejected", corrupt);
+        assertRejected("A truncated snapshot should be rejected", Arrays.copyOf(snapshot, snapshot.length / 2));
+    }
+
+    @Test
+    public void testStaleStaging() throws IOException {
+        File db = folder.newFolder();
+        File staging = new File(db, "temp/snapshot123");
+        staging.mkdirs();
+        write(new File(staging, "test" + JsonCache.CACHE_FILE_SUFFIX), "{}", now);
+        new JsonCache(db);
+        Assert.assertFalse("Staging directories of interrupted snapshots should be deleted", staging.exists());
+    }
+
+    @Test
+    public void testEscapingEntry() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.putNextEntry(new ZipEntry(CacheSnapshot.MANIFEST));
+        zip.write("flow-json-cache-snapshot 1\n../escaped.fjcache\t0\t2\n".getBytes("UTF-8"));
+        zip.putNextEntry(new ZipEntry("../escaped" + JsonCache.CACHE_FILE_SUFFIX));
+        zip.write("{}".getBytes("UTF-8"));
+        zip.putNextEntry(new ZipEntry(CacheSnapshot.END));
+        zip.write("1".getBytes("UTF-8"));
+        zip.finish();
+        assertRejected("Entries outside of the cache directory should be rejected", out.toByteArray());
+    }
+
+    private void assertRejected(String message, byte[] snapshot) throws IOException {
+        File db = folder.newFolder();
+        try {
+            new JsonCache(db).importSnapshot(new ByteArrayInputStream(snapshot));
+            Assert.fail(message);
+        } catch (IOException expected) {
+        }
+        Assert.assertEquals(message + ", leaving the cache alone", 1, db.list().length);
+        Assert.assertEquals(message + ", leaving the temp directory empty", 0, new File(db, "temp").list().length);
+        Assert.assertFalse(message + ", leaving the parent directory alone", new File(db.getParentFile(), "escaped" + JsonCache.CACHE_FILE_SUFFIX).exists());
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i <= data.length - part.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not found");
+    }
+
+    private byte[] export(JsonCache cache) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.exportSnapshot(out);
+        return out.toByteArray();
+    }
+
+    private static void write(File file, String content, long lastModified) throws IOException {
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        file.setLastModified(lastModified);
+    }
+}
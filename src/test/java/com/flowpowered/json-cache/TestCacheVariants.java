@@ -0,0 +1,159 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.flowpowered.jsoncache.connector.DownloadURLConnector;
+
+public class TestCacheVariants {
+    private final File cacheFile = new File("cachedb", "test" + JsonCache.CACHE_FILE_SUFFIX);
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNoVary() {
+        Map<String, List<String>> headers = headers("Accept-Language", "en");
+        Assert.assertEquals("A response without Vary should use the cache file", cacheFile, JsonCache.getVariantFile(cacheFile, null, headers));
+        Assert.assertEquals("An empty Vary should use the cache file", cacheFile, JsonCache.getVariantFile(cacheFile, " , ", headers));
+        Assert.assertNull("Vary: * can't be cached", JsonCache.getVariantFile(cacheFile, "Accept-Language, *", headers));
+    }
+
+    @Test
+    public void testVaryNormalization() {
+        Map<String, List<String>> headers = headers("accept-language", "en");
+        headers.put("Accept-Encoding", Arrays.asList("gzip"));
+        File variant = JsonCache.getVariantFile(cacheFile, "Accept-Language, Accept-Encoding", headers);
+        Assert.assertNotEquals("A response with Vary should use a variant file", cacheFile, variant);
+        Assert.assertEquals("Vary header names should ignore case and order", variant, JsonCache.getVariantFile(cacheFile, "accept-encoding,ACCEPT-LANGUAGE,accept-encoding", headers));
+        Assert.assertTrue("Variant files should be cache files", variant.getName().endsWith(JsonCache.CACHE_FILE_SUFFIX));
+    }
+
+    @Test
+    public void testVariantSelection() {
+        File en = JsonCache.getVariantFile(cacheFile, "Accept-Language", headers("Accept-Language", "en"));
+        File de = JsonCache.getVariantFile(cacheFile, "Accept-Language", headers("Accept-Language", "de"));
+        File missing = JsonCache.getVariantFile(cacheFile, "Accept-Language", new HashMap<String, List<String>>());
+        Assert.assertNotEquals("Different header values should use different variants", en, de);
+        Assert.assertNotEquals("A missing header should use its own variant", en, missing);
+        // These have the same String.hashCode().
+        Assert.assertNotEquals("Variants shouldn't collide", JsonCache.getVariantFile(cacheFile, "Accept-Language", headers("Accept-Language", "Aa")),
+                JsonCache.getVariantFile(cacheFile, "Accept-Language", headers("Accept-Language", "BB")));
+        Assert.assertEquals("Headers not in Vary shouldn't change the variant", en, JsonCache.getVariantFile(cacheFile, "Accept-Language", headers("Accept-Language", "en", "Cookie", "x")));
+    }
+
+    @Test
+    public void testRecordedVary() throws IOException {
+        File db = folder.newFolder("cachedb");
+        File file = new File(db, "test" + JsonCache.CACHE_FILE_SUFFIX);
+        Map<String, List<String>> headers = headers("Accept-Language", "en");
+        Assert.assertEquals("Without a recorded Vary the cache file should be used", file, JsonCache.getVariantFile(file, headers));
+        JsonCache.setVary(file, "Accept-Language");
+        Assert.assertEquals("The recorded Vary should select the variant", JsonCache.getVariantFile(file, "Accept-Language", headers), JsonCache.getVariantFile(file, headers));
+        JsonCache.setVary(file, null);
+        Assert.assertEquals("Removing the Vary should select the cache file again", file, JsonCache.getVariantFile(file, headers));
+    }
+
+    @Test
+    public void testOfflineVariant() throws IOException {
+        File db = folder.newFolder("cachedb");
+        JsonCache cache = new JsonCache(db);
+        URL url = new URL("http://localhost/test.json");
+        DownloadURLConnector connector = new DownloadURLConnector() {
+            @Override
+            public void setHeaders(URLConnection connection) {
+                super.setHeaders(connection);
+                connection.setRequestProperty("Accept-Language", "en");
+            }
+        };
+        // The connector adds the User-Agent outside of setHeaders.
+        File cacheFile = cache.getCachedFile(url);
+        JsonCache.setVary(cacheFile, "User-Agent, Accept-Language");
+        File variant = JsonCache.getVariantFile(cacheFile, connector.prepareRequest(url.openConnection()));
+        Files.write(variant.toPath(), "{}".getBytes("UTF-8"));
+
+        cache.setOfflineMode(true);
+        InputStream in = cache.get(url, connector);
+        try {
+            Assert.assertEquals("The offline lookup should find the cached variant", '{', in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testAuthorizationVariant() throws IOException {
+        URL url = new URL("http://localhost/test.json");
+        File a = JsonCache.getVariantFile(cacheFile, "Authorization", authorized("Bearer a", false).prepareRequest(url.openConnection()));
+        File b = JsonCache.getVariantFile(cacheFile, "Authorization", authorized("Bearer b", false).prepareRequest(url.openConnection()));
+        Assert.assertFalse("Different Authorization values shouldn't share a variant", a != null && a.equals(b));
+        Assert.assertNull("A hidden Authorization header can't be cached", a);
+
+        a = JsonCache.getVariantFile(cacheFile, "Authorization", authorized("Bearer a", true).prepareRequest(url.openConnection()));
+        b = JsonCache.getVariantFile(cacheFile, "Authorization", authorized("Bearer b", true).prepareRequest(url.openConnection()));
+        Assert.assertNotNull("A returned Authorization header can be cached", a);
+        Assert.assertNotEquals("Different Authorization values shouldn't share a variant", a, b);
+    }
+
+    private static DownloadURLConnector authorized(final String authorization, final boolean returned) {
+        return new DownloadURLConnector() {
+            @Override
+            public void setHeaders(URLConnection connection) {
+                super.setHeaders(connection);
+                connection.setRequestProperty("Authorization", authorization);
+            }
+
+            @Override
+            public Map<String, List<String>> getRequestHeaders(URLConnection connection) {
+                Map<String, List<String>> headers = new HashMap<String, List<String>>(super.getRequestHeaders(connection));
+                if (returned) {
+                    headers.put("Authorization", Arrays.asList(authorization));
+                }
+                return headers;
+            }
+        };
+    }
+
+    private static Map<String, List<String>> headers(String... namesAndValues) {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.put(namesAndValues[i], Arrays.asList(namesAndValues[i + 1]));
+        }
+        return headers;
+    }
+}
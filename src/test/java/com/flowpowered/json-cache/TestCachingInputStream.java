@@ -0,0 +1,222 @@
+/*
+ * This file is part of Flow JSON Cache, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2012 Spout LLC <https://spout.org/>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.flowpowered.jsoncache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCachingInputStream {
+    private final byte[] data = new byte[300 * 1024];
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    public TestCachingInputStream() {
+        new Random(1).nextBytes(data);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        CachingInputStream in = open(new ByteArrayInputStream(data), cached, 0);
+        Assert.assertTrue("The consumer should read all data", Arrays.equals(data, readFully(in)));
+        in.close();
+        Assert.assertTrue("All data should be cached", Arrays.equals(data, cached.toByteArray()));
+        Assert.assertTrue("The download should finish", finished.get() && !failed.get());
+    }
+
+    @Test
+    public void testReadAheadRoundTrip() throws IOException {
+        ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        CachingInputStream in = open(new ByteArrayInputStream(data), cached, 4);
+        Assert.assertTrue("The consumer should read all data", Arrays.equals(data, readFully(in)));
+        in.close();
+        Assert.assertTrue("All data should be cached", Arrays.equals(data, cached.toByteArray()));
+        Assert.assertEquals("All data should be received", data.length, in.getReceivedBytes());
+        Assert.assertTrue("The download should finish", finished.get() && !failed.get());
+    }
+
+    @Test
+    public void testReadAheadEarlyClose() throws IOException {
+        CachingInputStream in = open(new ByteArrayInputStream(data), new ByteArrayOutputStream(), 2);
+        Assert.assertEquals("The consumer should read the data", data[0] & 0xFF, in.read());
+        try {
+            in.close();
+            Assert.fail("Closing early should report the incomplete download");
+        } catch (IOException expected) {
+        }
+        awaitFailure();
+        Assert.assertTrue("An incomplete download shouldn't be cached", !finished.get() && failed.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testReadAheadStalledClose() throws IOException, InterruptedException {
+        StalledInputStream stalled = new StalledInputStream();
+        CachingInputStream in = open(stalled, new ByteArrayOutputStream(), 2);
+        Assert.assertEquals("The consumer should read the data", 1, in.read());
+        long start = System.currentTimeMillis();
+        try {
+            in.close();
+            Assert.fail("Closing early should report the incomplete download");
+        } catch (IOException expected) {
+        }
+        Assert.assertTrue("Closing shouldn't wait for a stalled read", System.currentTimeMillis() - start < 1000);
+
+        stalled.release();
+        awaitFailure();
+        Assert.assertTrue("An incomplete download shouldn't be cached", !finished.get() && failed.get());
+        Assert.assertTrue("The stalled stream should be closed once its read returned", stalled.closed);
+    }
+
+    @Test
+    public void testReadAheadWriteFailure() throws IOException {
+        FailingOutputStream cached = new FailingOutputStream(100 * 1024);
+        CachingInputStream in = open(new ByteArrayInputStream(data), cached, 4);
+        Assert.assertTrue("A failing cache shouldn't affect the consumer", Arrays.equals(data, readFully(in)));
+        try {
+            in.close();
+            Assert.fail("Closing should report the write failure");
+        } catch (IOException expected) {
+            Assert.assertEquals("Closing should report the write failure", "Disk full", expected.getMessage());
+        }
+        Assert.assertTrue("A partially written download shouldn't be cached", !finished.get() && failed.get());
+        Assert.assertTrue("The cache stream should be closed", cached.closed);
+    }
+
+    private CachingInputStream open(InputStream readFrom, OutputStream writeTo, int readAheadBuffers) {
+        CachingInputStream in = new CachingInputStream(readFrom, writeTo, readAheadBuffers, 16 * 1024);
+        in.setExpectedBytes(data.length);
+        in.setOnFinish(new Runnable() {
+            @Override
+            public void run() {
+                finished.set(true);
+            }
+        });
+        in.setOnFailure(new Runnable() {
+            @Override
+            public void run() {
+                failed.set(true);
+            }
+        });
+        return in;
+    }
+
+    private void awaitFailure() {
+        // Discarding an early closed download happens in the background.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!failed.get() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[5000];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Like the JDK HTTP streams, reading and closing share a lock, so closing waits for a stalled read.
+     */
+    private static class StalledInputStream extends InputStream {
+        private final CountDownLatch stall = new CountDownLatch(1);
+        private boolean first = true;
+        private volatile boolean closed = false;
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0];
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (first) {
+                first = false;
+                b[off] = 1;
+                return 1;
+            }
+            // Socket reads don't react to interrupts either.
+            while (true) {
+                try {
+                    stall.await();
+                    break;
+                } catch (InterruptedException ignore) {
+                }
+            }
+            b[off] = 2;
+            return 1;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+
+        private void release() {
+            stall.countDown();
+        }
+    }
+
+    private static class FailingOutputStream extends OutputStream {
+        private final int limit;
+        private int written = 0;
+        private boolean closed = false;
+
+        private FailingOutputStream(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written + len > limit) {
+                throw new IOException("Disk full");
+            }
+            written += len;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}